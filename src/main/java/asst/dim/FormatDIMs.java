@@ -0,0 +1,251 @@
+package asst.dim;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Utilities associated with putting display formatting back into
+ * normalized data when they are sent to a person.  Formatting depends on
+ * the locale of the user and on the jurisdiction of the data.  The
+ * jurisdiction decides the rules, such as the currency of an amount, and
+ * the locale only decides how they are displayed, so nothing which
+ * depends on the rules is formatted when the jurisdiction is unknown.
+ * @author Material Gain
+ * @since 2014 04
+ */
+public class FormatDIMs {
+
+  /**
+   * Maps the name of a DIM to a method that formats a normalized value
+   * for display.
+   */
+  public static Map<String, Method> formatters =
+    new HashMap<String, Method>();
+  static {
+    try {
+      Class<?>[] params = {String.class, Locale.class, String.class};
+      formatters.put("phone", FormatDIMs.class.getMethod("formatPhone", params));
+      formatters.put("postalCode", FormatDIMs.class.getMethod("formatPostalCode", params));
+      formatters.put("currency", FormatDIMs.class.getMethod("formatCurrency", params));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * NumberFormat is not thread safe, so each thread keeps its own
+   * formats, one per locale and currency.  They are built once
+   * and reused for every field the thread formats.
+   */
+  private static final ThreadLocal<Map<String, NumberFormat>> FORMATS =
+    new ThreadLocal<Map<String, NumberFormat>>() {
+      @Override
+      protected Map<String, NumberFormat> initialValue() {
+	return new HashMap<String, NumberFormat>();
+      }
+    };
+
+  /**
+   * Format one field of a JSON object if its DIM has a formatter and the
+   * role information supplies a locale or a jurisdiction.  It should be
+   * called only on visible fields whose value was not changed by a
+   * masking method.
+   * @param fld the POJO field
+   * @param o the object where the field is found
+   * @param m the name of the DIM - phone, currency, etc.
+   * @param jobj the JSON object or attribute map whose value may need
+   * to be changed
+   * @param uo information about the user locale and data jurisdiction
+   * @return true if a value was changed, false otherwise
+   * @throws Exception when things go wrong
+   */
+  public static boolean formatFieldValue(Field fld, Object o, String m,
+					 Map<String, Object> jobj,
+					 IRoleInfo uo)
+    throws Exception {
+    Method formatter = formatters.get(m);
+    if (formatter == null) { return false; } // no formatter, no change
+
+    String value = fld.get(o).toString();
+    if ((value == null) || (value.length() <= 0)) { return false; }
+
+    if (uo == null) { return false; }
+    Locale locale = uo.getLocale();
+    String jurisdiction = uo.getJurisdiction();
+    if ((locale == null) && (country(jurisdiction) == null)) {
+      return false;		// no one said how to display it
+    }
+    if (locale == null) { locale = Locale.ROOT; }
+    String maybeNewValue =
+      (String)formatter.invoke(null, value, locale, jurisdiction);
+    if (!value.equals(maybeNewValue)) {
+      /* Jackson writes a public field without JsonProperty under its
+       * Java name. */
+      String jsonAttr = MaskDIMs.getJsonAttr(fld);
+      if (jsonAttr == null) { jsonAttr = fld.getName(); }
+      jobj.put(jsonAttr,  maybeNewValue);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param jurisdiction country code of the data or null
+   * @return the country whose rules apply, or null if it is not known.
+   * The locale of the user is never used because it says nothing about
+   * where the data came from.
+   */
+  public static String country(String jurisdiction) {
+    if ((jurisdiction != null) && (jurisdiction.length() > 0)) {
+      return jurisdiction.toUpperCase(Locale.ROOT);
+    }
+    return null;
+  }
+
+  /**
+   * Put punctuation back into a phone number which was reduced to digits
+   * by validation.  Numbers which do not fit the plan of the jurisdiction,
+   * or whose jurisdiction is not known, are returned unchanged.
+   * @param value normalized phone number
+   * @param locale locale of the user
+   * @param jurisdiction country code of the data or null
+   * @return the phone number formatted for display
+   */
+  public static String formatPhone(String value, Locale locale,
+				   String jurisdiction) {
+    String country = country(jurisdiction);
+    if ("US".equals(country) || "CA".equals(country)) {
+      String digits = value;
+      String prefix = "";
+      if ((digits.length() == 11) && (digits.charAt(0) == '1')) {
+	digits = digits.substring(1);
+	prefix = "+1 ";
+      }
+      if ((digits.length() != 10) || !allDigits(digits)) { return value; }
+      StringBuilder sb = new StringBuilder(prefix.length() + 14);
+      sb.append(prefix).append('(').append(digits, 0, 3).append(") ")
+	.append(digits, 3, 6).append('-').append(digits, 6, 10);
+      return sb.toString();
+    }
+    return value;
+  }
+
+  /**
+   * Put the separator back into a postal code.  Codes whose jurisdiction
+   * is not known are returned unchanged.
+   * @param value normalized postal code without spaces or dashes
+   * @param locale locale of the user
+   * @param jurisdiction country code of the data or null
+   * @return the postal code formatted for display
+   */
+  public static String formatPostalCode(String value, Locale locale,
+					String jurisdiction) {
+    String country = country(jurisdiction);
+    if ("US".equals(country)) {
+      if ((value.length() == 9) && allDigits(value)) {
+	return value.substring(0, 5) + "-" + value.substring(5);
+      }
+    } else if ("CA".equals(country)) {
+      if (value.length() == 6) {
+	return value.substring(0, 3) + " " + value.substring(3);
+      }
+    } else if ("GB".equals(country)) {
+      /* The inward code is always the last three characters. */
+      if ((value.length() >= 5) && (value.length() <= 7) &&
+	  (value.indexOf(' ') < 0)) {
+	int split = value.length() - 3;
+	return value.substring(0, split) + " " + value.substring(split);
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Format an amount of money in the currency of the jurisdiction using
+   * the conventions of the user locale.  When the jurisdiction is not
+   * known the currency is not known either, so the amount is formatted
+   * as a plain number.
+   * @param value normalized decimal amount
+   * @param locale locale of the user
+   * @param jurisdiction country code of the data or null
+   * @return the amount formatted for display, or the value unchanged if
+   * it is not a number or no currency can be found for it
+   */
+  public static String formatCurrency(String value, Locale locale,
+				      String jurisdiction) {
+    BigDecimal amount;
+    try {
+      amount = new BigDecimal(value);
+    } catch (NumberFormatException e) {
+      return value;
+    }
+    String country = country(jurisdiction);
+    NumberFormat nf = (country == null) ? numberFormat(locale) :
+      currencyFormat(locale, country);
+    return (nf == null ? value : nf.format(amount));
+  }
+
+  /**
+   * @param locale locale of the user
+   * @param country country whose currency is used
+   * @return this thread's currency format for the locale and country, or
+   * null if the country is unknown or has no currency of its own
+   */
+  public static NumberFormat currencyFormat(Locale locale, String country) {
+    String key = locale.toString() + '|' + country;
+    Map<String, NumberFormat> formats = FORMATS.get();
+    if (formats.containsKey(key)) { return formats.get(key); }
+
+    NumberFormat nf = null;
+    Currency currency = null;
+    if ((country != null) && (country.length() > 0)) {
+      try {
+	currency = Currency.getInstance(new Locale("", country));
+      } catch (IllegalArgumentException e) {
+	/* Unknown country, so the currency is unknown too. */
+      }
+    }
+    /* A country such as AQ has no currency, and XXX is the placeholder
+     * which prints as a generic currency sign. */
+    if ((currency != null) && !"XXX".equals(currency.getCurrencyCode())) {
+      nf = NumberFormat.getCurrencyInstance(locale);
+      nf.setCurrency(currency);
+      int digits = currency.getDefaultFractionDigits();
+      if (digits >= 0) {
+	nf.setMinimumFractionDigits(digits);
+	nf.setMaximumFractionDigits(digits);
+      }
+    }
+    formats.put(key, nf);
+    return nf;
+  }
+
+  /**
+   * @param locale locale of the user
+   * @return this thread's plain number format for the locale
+   */
+  public static NumberFormat numberFormat(Locale locale) {
+    String key = locale.toString() + "|#";
+    Map<String, NumberFormat> formats = FORMATS.get();
+    NumberFormat nf = formats.get(key);
+    if (nf == null) {
+      nf = NumberFormat.getNumberInstance(locale);
+      formats.put(key, nf);
+    }
+    return nf;
+  }
+
+  private static boolean allDigits(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if ((c < '0') || (c > '9')) { return false; }
+    }
+    return true;
+  }
+}
@@ -1,11 +1,13 @@
 package asst.dim;
 
+import java.util.Locale;
 import java.util.Set;
 
 /**
  * Provide information about user roles.  The roles are not stored in
  * any particular order.  Each DIM is required to order them from
- * most permissive to least permissive
+ * most permissive to least permissive.  The locale and jurisdiction
+ * control how fields are formatted when they are sent to the user.
  * @author Material Gain
  * @since 4014 04
  */
@@ -15,4 +17,22 @@ public interface IRoleInfo {
    * @return set of unordered user role names.
    */
   public Set<String> getUserRoles();
+
+  /**
+   * @return the locale in which the user reads data, or null if there is
+   * none.  Fields are formatted for display only when there is a locale
+   * or a jurisdiction.
+   */
+  public default Locale getLocale() {
+    return null;
+  }
+
+  /**
+   * @return ISO country code of the jurisdiction whose rules apply to the
+   * data, or null if it is not known.  Phone numbers, postal codes and
+   * currencies are formatted only for a known jurisdiction.
+   */
+  public default String getJurisdiction() {
+    return null;
+  }
 }
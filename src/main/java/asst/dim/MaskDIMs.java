@@ -1,38 +1,181 @@
 package asst.dim;
 
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 /**
  * Utilities associated with masking data based on user roles.  Masking
- * requires changing the value of a JSON object attribute.
+ * requires changing the value of a JSON object attribute.  Masked objects
+ * can also be encoded as Smile or CBOR for service to service traffic.
  * @author Material Gain
  * @since 2014 02
  */
 public class MaskDIMs {
 
+  /**
+   * Table used by maskTokenize.  The application must open it before any
+   * DIM is mapped to the tokenizing masker.
+   */
+  public static TokenTable tokenTable;
+
+  /** Mapper which writes masked objects as Smile, binary JSON. */
+  public static final ObjectMapper SMILE_MAPPER =
+    new ObjectMapper(new SmileFactory());
+  /** Mapper which writes masked objects as CBOR. */
+  public static final ObjectMapper CBOR_MAPPER =
+    new ObjectMapper(new CBORFactory());
+  /** Mapper which turns a POJO into an attribute map without writing
+   * it as text. */
+  private static final ObjectMapper TREE_MAPPER = new ObjectMapper();
+  private static final TypeReference<Map<String, Object>> ATTR_MAP =
+    new TypeReference<Map<String, Object>>() {};
+  private static final TypeReference<List<Map<String, Object>>> ATTR_LIST =
+    new TypeReference<List<Map<String, Object>>>() {};
+
   /**
    * Mask object field values based on DIM annotations.  A mask may
    * change the value of a field in the JSON object if the field us
-   * visible.  This method assumes that the values have been validated
-   * and that the user has corrected any invalid values.
+   * visible.  Visible fields which are not masked are formatted for the
+   * locale and jurisdiction in the role information.  This method
+   * assumes that the values have been validated and that the user has
+   * corrected any invalid values.
    * @param o object whose annotations specify how to send its fields
    * to the use and how to mask them.
-   * @param uo Information about the user roles
+   * @param uo Information about the user roles, locale and jurisdiction
    * @return Masked JSON object based on DIM annotations and the user
    * roles
    * @throws Exception when things go wrong.
    */
+  @SuppressWarnings("unchecked")
   public static JSONObject maskObject(Object o, IRoleInfo uo) throws Exception {
-    Class<?> clazz = o.getClass();
     JSONObject jobj = pojoToJson(o);
+    maskAttributes(o, jobj, uo, true);
+    return jobj;
+  }
+
+  /**
+   * Mask an object and encode it in a binary format such as Smile or
+   * CBOR.  The attributes are masked and omitted exactly as maskObject
+   * does it, but they are not formatted for display, so numbers stay
+   * numbers for the service which reads them.  The object is never
+   * written as JSON text.
+   * @param o object whose annotations specify how to send its fields
+   * to the use and how to mask them.
+   * @param uo Information about the user roles
+   * @param mapper mapper for the output format, usually SMILE_MAPPER or
+   * CBOR_MAPPER
+   * @return the encoded masked object
+   * @throws Exception when things go wrong.
+   */
+  public static byte[] maskObjectBytes(Object o, IRoleInfo uo,
+				       ObjectMapper mapper) throws Exception {
+    Map<String, Object> attrs = TREE_MAPPER.convertValue(o, ATTR_MAP);
+    maskAttributes(o, attrs, uo, false);
+    return mapper.writeValueAsBytes(attrs);
+  }
+
+  /**
+   * @param bytes masked object encoded by maskObjectBytes
+   * @param mapper mapper for the format the object was encoded in
+   * @return the attributes of the masked object
+   * @throws Exception when things go wrong.
+   */
+  public static Map<String, Object> readMaskedBytes(byte[] bytes,
+						     ObjectMapper mapper)
+    throws Exception {
+    return mapper.readValue(bytes, ATTR_MAP);
+  }
+
+  /**
+   * Mask a result set and write it as one array through a single
+   * generator.  One document for all the rows lets Smile refer back to
+   * attribute names it has already written instead of repeating them in
+   * every row.  Rows are masked as maskObjectBytes masks them, without
+   * display formatting.
+   * @param rows objects to be masked, written in iteration order
+   * @param uo Information about the user roles
+   * @param mapper mapper for the output format, usually SMILE_MAPPER or
+   * CBOR_MAPPER
+   * @param out where the array is written.  It is flushed but not closed.
+   * @throws Exception when things go wrong.
+   */
+  public static void writeMaskedRows(Iterator<?> rows, IRoleInfo uo,
+				     ObjectMapper mapper, OutputStream out)
+    throws Exception {
+    ObjectWriter writer =
+      mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    try (JsonGenerator gen = mapper.getFactory().createGenerator(out)) {
+      gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      gen.writeStartArray();
+      Object o;
+      Map<String, Object> attrs;
+      while (rows.hasNext()) {
+	o = rows.next();
+	attrs = TREE_MAPPER.convertValue(o, ATTR_MAP);
+	maskAttributes(o, attrs, uo, false);
+	writer.writeValue(gen, attrs);
+      }
+      gen.writeEndArray();
+    }
+  }
+
+  /**
+   * @param rows objects to be masked
+   * @param uo Information about the user roles
+   * @param mapper mapper for the output format
+   * @return the masked rows encoded as one array
+   * @throws Exception when things go wrong.
+   */
+  public static byte[] maskRowsBytes(Iterable<?> rows, IRoleInfo uo,
+				     ObjectMapper mapper) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    writeMaskedRows(rows.iterator(), uo, mapper, baos);
+    return baos.toByteArray();
+  }
+
+  /**
+   * @param bytes array of masked rows written by writeMaskedRows
+   * @param mapper mapper for the format the rows were encoded in
+   * @return the attributes of each masked row
+   * @throws Exception when things go wrong.
+   */
+  public static List<Map<String, Object>> readMaskedRows(byte[] bytes,
+							  ObjectMapper mapper)
+    throws Exception {
+    return mapper.readValue(bytes, ATTR_LIST);
+  }
+
+  /**
+   * Mask the attributes of an object which has already been converted
+   * to a map of attribute names to values.
+   * @param o object whose annotations specify how to mask its fields
+   * @param attrs attributes of the object, changed in place
+   * @param uo Information about the user roles, locale and jurisdiction
+   * @param format true to format values which are not masked for display
+   * to a person, false to leave them in normalized form for a program
+   * @throws Exception when things go wrong.
+   */
+  public static void maskAttributes(Object o, Map<String, Object> attrs,
+				    IRoleInfo uo, boolean format)
+    throws Exception {
+    Class<?> clazz = o.getClass();
     DIM dim;
     String m; // The meaning of the field
     Object fieldValue;
@@ -50,10 +193,12 @@ public class MaskDIMs {
 	continue;
       }
       /* At this point, the field is known to have a value which must be
-       * masked in the JSON object. */
-      maskFieldValue(fld, o, m, jobj, uo);
+       * masked in the JSON object.  A value which the mask leaves alone
+       * may be formatted for the user locale and the data jurisdiction. */
+      if (!maskFieldValue(fld, o, m, attrs, uo) && format) {
+	FormatDIMs.formatFieldValue(fld, o, m, attrs, uo);
+      }
     }
-    return jobj;
   }
 
   /**
@@ -66,13 +211,14 @@ public class MaskDIMs {
    * @param fld the POJO field
    * @param o the object where the file is found
    * @param m the name of the DIM - email, phone, etc.
-   * @param jobj the JSON object whose value may need to be changed
+   * @param jobj the JSON object or attribute map whose value may need
+   * to be changed
    * @param uo information about the user roles
    * @return true if a value was changed, false otherwise
    * @throws Exception when things go wrong
    */
   public static boolean maskFieldValue(Field fld, Object o, String m,
-				       JSONObject jobj, IRoleInfo uo)
+				       Map<String, Object> jobj, IRoleInfo uo)
     throws Exception {
     Method masker = RoleToMask.findMaskerForDimAndRoles(m, uo);
     if (masker == null) { return false; } // no mask, no change
@@ -138,4 +284,34 @@ public class MaskDIMs {
     return datum;
   }
 
+  /**
+   * @param datum value from the field
+   * @return a token which always stands for the same value so that
+   * masked exports can still be joined
+   */
+  public static String maskTokenize(String datum) {
+    if (tokenTable == null) {
+      throw new RuntimeException("No token table is open for maskTokenize");
+    }
+    return tokenTable.tokenize(datum);
+  }
+
+  /**
+   * Turn a token back into the raw value if the user roles permit the
+   * user to see the whole value of the DIM.
+   * @param token value produced by maskTokenize
+   * @param m the name of the DIM - email, phone, etc.
+   * @param uo information about the user roles
+   * @return the raw value, or the token unchanged if the user may not see
+   * the raw value or the token is unknown
+   */
+  public static String detokenize(String token, String m, IRoleInfo uo) {
+    Method masker = RoleToMask.findMaskerForDimAndRoles(m, uo);
+    if ((tokenTable == null) || !RoleToMask.maskPermit.equals(masker)) {
+      return token;
+    }
+    String raw = tokenTable.detokenize(token);
+    return (raw == null ? token : raw);
+  }
+
 }
@@ -23,12 +23,23 @@ public class RoleToMask {
    * matches.
    */
   public static Method maskForbid;
+  /**
+   * Method which lets the user see the whole value.  Users whose roles map
+   * to it may also turn tokens back into raw values.
+   */
+  public static Method maskPermit;
+  /**
+   * Method which replaces the value by a stable token.
+   */
+  public static Method maskTokenize;
 
   static {
     try {
 //      RoleToMask[] rRay;
       Class<?>[] params = {String.class};
       maskForbid = RoleToMask.class.getMethod("maskSeeNothing", params);
+      maskPermit = MaskDIMs.class.getMethod("maskSeeAll", params);
+      maskTokenize = MaskDIMs.class.getMethod("maskTokenize", params);
 /*      rRay    = new RoleToMask[4];
 	rRay[0] = new RoleToMask("role3",
 	MaskDIMs.class.getMethod("maskSeeAll", params));
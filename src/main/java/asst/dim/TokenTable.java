@@ -0,0 +1,412 @@
+package asst.dim;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+/**
+ * Persistent table which maps raw field values to surrogate tokens and
+ * back.  The table is an open-addressing hash table kept in a memory
+ * mapped file so that very large tables do not put pressure on the
+ * garbage collector and survive restarts.  A token is the index of the
+ * slot which holds the raw value, so the same value always gets the
+ * same token from a given table file and joins still work across
+ * masked exports.
+ * <p>
+ * The file holds a header, a power-of-two array of 8 byte slots and a
+ * data region where the raw values are appended as a length followed
+ * by UTF-8 bytes.  Each slot holds the position of its value in the low
+ * 40 bits and part of the hash of the value in the high 24 bits so that
+ * most probes never have to touch the data region.  The table does not
+ * grow; it must be created large enough for the expected number of
+ * values.
+ * <p>
+ * The file is locked while it is open, so a second process which tries
+ * to open the same table gets an IOException instead of corrupting it.
+ * @author Material Gain
+ * @since 2014 04
+ */
+public class TokenTable implements Closeable {
+
+  /** Every token starts with this prefix so that it cannot be confused
+   * with a raw value. */
+  public static final String TOKEN_PREFIX = "tok-";
+
+  static final long MAGIC = 0x44494d544f4b4e31L; // DIMTOKN1
+  static final int  HEADER_SIZE  = 64;
+  static final int  OFF_MAGIC    = 0;
+  static final int  OFF_SLOTS    = 8;
+  static final int  OFF_COUNT    = 16;
+  static final int  OFF_DATA_END = 24;
+  static final int  OFF_SIZE     = 32;
+  static final int  OFF_SEED     = 40;
+
+  /** Files are mapped in segments because one mapped buffer cannot
+   * exceed 2 GB. */
+  static final int  SEGMENT_SHIFT = 30;
+  static final long SEGMENT_SIZE  = 1L << SEGMENT_SHIFT;
+  static final long POSITION_MASK = (1L << 40) - 1;
+  /** Smallest table; fewer slots would leave no room at three quarters
+   * full. */
+  static final long MIN_SLOTS = 4;
+
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final MappedByteBuffer[] segments;
+  private final long slots;
+  private final long fileSize;
+  private final long seed;
+  private long count;
+  private long dataEnd;
+  private boolean closed;
+
+  /**
+   * Open a token table file, creating it if it does not exist or is
+   * empty.  The sizes are ignored when an existing table is opened.
+   * @param file where the table is kept
+   * @param slots number of slots to create, rounded up to a power of two.
+   * At most three quarters of them may be filled.  Tables have at least
+   * MIN_SLOTS slots.
+   * @param dataBytes size of the region which holds the raw values
+   * @return the open table
+   * @throws IOException when the file cannot be created, is not a
+   * token table or is open in another process
+   */
+  public static TokenTable open(File file, long slots, long dataBytes)
+    throws IOException {
+    if (file.exists() && (file.length() > 0)) {
+      return new TokenTable(file);
+    }
+    return new TokenTable(file, slots, dataBytes);
+  }
+
+  /**
+   * Create a new, empty table file.
+   */
+  private TokenTable(File file, long wantSlots, long dataBytes)
+    throws IOException {
+    if ((wantSlots <= 0) || (dataBytes <= 0)) {
+      throw new IllegalArgumentException("Token table sizes must be positive");
+    }
+    long s = Long.highestOneBit(Math.max(wantSlots, MIN_SLOTS));
+    if (s < wantSlots) { s <<= 1; }
+    slots    = s;
+    fileSize = HEADER_SIZE + (slots * 8) + dataBytes;
+    if (fileSize > POSITION_MASK) {
+      throw new IllegalArgumentException("Token table of " + fileSize +
+					 " bytes is too large");
+    }
+    seed     = new SecureRandom().nextLong();
+    count    = 0;
+    dataEnd  = HEADER_SIZE + (slots * 8);
+    raf      = new RandomAccessFile(file, "rw");
+    try {
+      channel  = raf.getChannel();
+      lock(file);
+      raf.setLength(fileSize);
+      segments = map(channel, fileSize);
+    } catch (IOException | RuntimeException e) {
+      raf.close();		// also releases the lock
+      throw e;
+    }
+    putLong(OFF_MAGIC, MAGIC);
+    putLong(OFF_SLOTS, slots);
+    putLong(OFF_COUNT, count);
+    putLong(OFF_DATA_END, dataEnd);
+    putLong(OFF_SIZE, fileSize);
+    putLong(OFF_SEED, seed);
+  }
+
+  /**
+   * Open an existing table file.  The header is checked before it is
+   * trusted so that a damaged file gives an IOException rather than
+   * reads and writes outside the table.
+   */
+  private TokenTable(File file) throws IOException {
+    raf      = new RandomAccessFile(file, "rw");
+    try {
+      channel  = raf.getChannel();
+      lock(file);
+      long length = channel.size();
+      if (length < HEADER_SIZE) {
+	throw new IOException(file + " is not a token table");
+      }
+      segments = map(channel, length);
+      if (getLong(OFF_MAGIC) != MAGIC) {
+	throw new IOException(file + " is not a token table");
+      }
+      slots    = getLong(OFF_SLOTS);
+      count    = getLong(OFF_COUNT);
+      dataEnd  = getLong(OFF_DATA_END);
+      fileSize = getLong(OFF_SIZE);
+      seed     = getLong(OFF_SEED);
+      if (fileSize != length) {
+	throw new IOException(file + " is truncated");
+      }
+      if ((slots < MIN_SLOTS) || (Long.bitCount(slots) != 1) ||
+	  (slots > ((fileSize - HEADER_SIZE) >>> 3)) ||
+	  (fileSize > POSITION_MASK)) {
+	throw new IOException(file + " has a damaged header: " + slots +
+			      " slots in " + fileSize + " bytes");
+      }
+      if ((dataEnd < (HEADER_SIZE + (slots * 8))) || (dataEnd > fileSize) ||
+	  (count < 0) || (count > slots)) {
+	throw new IOException(file + " has a damaged header: data end " +
+			      dataEnd + ", " + count + " values");
+      }
+    } catch (IOException | RuntimeException e) {
+      raf.close();		// also releases the lock
+      throw e;
+    }
+  }
+
+  /**
+   * Lock the whole file for as long as the table is open.  The lock is
+   * released when the channel is closed.
+   */
+  private void lock(File file) throws IOException {
+    FileLock lock;
+    try {
+      lock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null;		// already open in this JVM
+    }
+    if (lock == null) {
+      throw new IOException(file + " is already open as a token table");
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Token table is closed");
+    }
+  }
+
+  private static MappedByteBuffer[] map(FileChannel channel, long size)
+    throws IOException {
+    int n = (int)((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+    MappedByteBuffer[] segs = new MappedByteBuffer[n];
+    for (int i = 0; i < n; i++) {
+      long start = (long)i << SEGMENT_SHIFT;
+      segs[i] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+			    Math.min(SEGMENT_SIZE, size - start));
+    }
+    return segs;
+  }
+
+  /**
+   * @return the number of distinct values in the table
+   */
+  public synchronized long size() {
+    checkOpen();
+    return count;
+  }
+
+  /**
+   * Find the token for a raw value, adding the value to the table if it
+   * has not been seen before.
+   * @param raw the value to be replaced by a token
+   * @return the token which stands for the value, or null if the value
+   * is null
+   * @throws IllegalStateException if the table is full
+   */
+  public synchronized String tokenize(String raw) {
+    checkOpen();
+    if (raw == null) { return null; }
+    byte[] bytes = raw.getBytes(StandardCharsets.UTF_8);
+    long h    = hash(bytes);
+    long tag  = h >>> 40;
+    long mask = slots - 1;
+    long idx  = h & mask;
+    long slot;
+    while ( (slot = getLong(slotPosition(idx))) != 0) {
+      if (((slot >>> 40) == tag) &&
+	  recordEquals(slot & POSITION_MASK, bytes)) {
+	return TOKEN_PREFIX + Long.toString(idx, 36);
+      }
+      idx = (idx + 1) & mask;
+    }
+    /* Not found; idx is the first empty slot in the probe sequence. */
+    if ((count + 1) > ((slots >>> 2) * 3)) {
+      throw new IllegalStateException("Token table is full at " + count +
+				      " values");
+    }
+    if ((dataEnd + 4 + bytes.length) > fileSize) {
+      throw new IllegalStateException("Token table data region is full at " +
+				      count + " values");
+    }
+    /* The record and the header are written before the slot.  If the
+     * process dies part way through, the record is unreachable but no
+     * token ever points at data which a later insert overwrites. */
+    long pos = dataEnd;
+    putInt(pos, bytes.length);
+    putBytes(pos + 4, bytes);
+    dataEnd += 4 + bytes.length;
+    count++;
+    putLong(OFF_DATA_END, dataEnd);
+    putLong(OFF_COUNT, count);
+    putLong(slotPosition(idx), (tag << 40) | pos);
+    return TOKEN_PREFIX + Long.toString(idx, 36);
+  }
+
+  /**
+   * Find the raw value which a token stands for.  The caller is
+   * responsible for checking that the user may see raw values.
+   * @param token a token returned by tokenize
+   * @return the raw value or null if the token is not in the table
+   */
+  public synchronized String detokenize(String token) {
+    checkOpen();
+    if ((token == null) || !token.startsWith(TOKEN_PREFIX)) { return null; }
+    long idx;
+    try {
+      idx = Long.parseLong(token.substring(TOKEN_PREFIX.length()), 36);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if ((idx < 0) || (idx >= slots)) { return null; }
+    long slot = getLong(slotPosition(idx));
+    if (slot == 0) { return null; }
+    long pos = slot & POSITION_MASK;
+    byte[] bytes = new byte[getInt(pos)];
+    getBytes(pos + 4, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Write any changed pages back to the file.
+   */
+  public synchronized void flush() {
+    checkOpen();
+    for (MappedByteBuffer seg : segments) { seg.force(); }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) { return; }
+    flush();
+    closed = true;
+    channel.close();
+    raf.close();
+  }
+
+  private static long slotPosition(long idx) {
+    return HEADER_SIZE + (idx << 3);
+  }
+
+  /**
+   * Seeded FNV-1a followed by the murmur finalizer.  The seed is random
+   * per table so tokens from one table reveal nothing about another.
+   */
+  private long hash(byte[] bytes) {
+    long h = seed ^ (bytes.length * 0x9E3779B97F4A7C15L);
+    for (byte b : bytes) {
+      h ^= (b & 0xff);
+      h *= 0x100000001B3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Compare a stored record with a value in place, without copying it
+   * out of the mapped file.  This is on the probe path of every
+   * tokenize call.
+   */
+  private boolean recordEquals(long pos, byte[] bytes) {
+    if (getInt(pos) != bytes.length) { return false; }
+    pos += 4;
+    int done = 0;
+    while (done < bytes.length) {
+      MappedByteBuffer seg = segments[(int)(pos >>> SEGMENT_SHIFT)];
+      int off = (int)(pos & (SEGMENT_SIZE - 1));
+      int n = Math.min(bytes.length - done, seg.capacity() - off);
+      for (int i = 0; i < n; i++) {
+	if (seg.get(off + i) != bytes[done + i]) { return false; }
+      }
+      done += n;
+      pos  += n;
+    }
+    return true;
+  }
+
+  /* Slots and header fields are 8 byte aligned, so a long never
+   * straddles two segments. */
+  private long getLong(long pos) {
+    return segments[(int)(pos >>> SEGMENT_SHIFT)]
+      .getLong((int)(pos & (SEGMENT_SIZE - 1)));
+  }
+
+  private void putLong(long pos, long value) {
+    segments[(int)(pos >>> SEGMENT_SHIFT)]
+      .putLong((int)(pos & (SEGMENT_SIZE - 1)), value);
+  }
+
+  /* Records are not aligned, so a record length is assembled a byte at
+   * a time on the rare occasion that it crosses a segment boundary.
+   * Both ways store it big-endian. */
+  private int getInt(long pos) {
+    MappedByteBuffer seg = segments[(int)(pos >>> SEGMENT_SHIFT)];
+    int off = (int)(pos & (SEGMENT_SIZE - 1));
+    if ((off + 4) <= seg.capacity()) { return seg.getInt(off); }
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      value = (value << 8) | (getByte(pos + i) & 0xff);
+    }
+    return value;
+  }
+
+  private void putInt(long pos, int value) {
+    MappedByteBuffer seg = segments[(int)(pos >>> SEGMENT_SHIFT)];
+    int off = (int)(pos & (SEGMENT_SIZE - 1));
+    if ((off + 4) <= seg.capacity()) {
+      seg.putInt(off, value);
+      return;
+    }
+    for (int i = 0; i < 4; i++) {
+      segments[(int)((pos + i) >>> SEGMENT_SHIFT)]
+	.put((int)((pos + i) & (SEGMENT_SIZE - 1)),
+	     (byte)(value >>> (24 - (8 * i))));
+    }
+  }
+
+  private byte getByte(long pos) {
+    return segments[(int)(pos >>> SEGMENT_SHIFT)]
+      .get((int)(pos & (SEGMENT_SIZE - 1)));
+  }
+
+  private void getBytes(long pos, byte[] dst) {
+    int done = 0;
+    while (done < dst.length) {
+      MappedByteBuffer seg = segments[(int)(pos >>> SEGMENT_SHIFT)];
+      int off = (int)(pos & (SEGMENT_SIZE - 1));
+      int n = Math.min(dst.length - done, seg.capacity() - off);
+      for (int i = 0; i < n; i++) { dst[done + i] = seg.get(off + i); }
+      done += n;
+      pos  += n;
+    }
+  }
+
+  private void putBytes(long pos, byte[] src) {
+    int done = 0;
+    while (done < src.length) {
+      MappedByteBuffer seg = segments[(int)(pos >>> SEGMENT_SHIFT)];
+      int off = (int)(pos & (SEGMENT_SIZE - 1));
+      int n = Math.min(src.length - done, seg.capacity() - off);
+      for (int i = 0; i < n; i++) { seg.put(off + i, src[done + i]); }
+      done += n;
+      pos  += n;
+    }
+  }
+}
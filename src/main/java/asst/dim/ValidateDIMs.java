@@ -118,19 +118,38 @@ public class ValidateDIMs {
 				 " has a URL annotation, but it is not a String field.");
     }
     String value = fld.get(o).toString();
-    String maybeNewValue = value.trim().replace("\"", "");
-    if (!"http".equalsIgnoreCase(maybeNewValue.substring(0, 4))) {
-      maybeNewValue = "http://" + maybeNewValue;
-    }
+    String maybeNewValue = canonicalURL(value);
     if (!value.equals(maybeNewValue)) {
       fld.set(o, maybeNewValue);
     }
+    return checkURL(maybeNewValue, sb);
+  }
+
+  /**
+   * @param value text which is supposed to be a URL
+   * @return the text without quotes or surrounding spaces, starting with
+   * http
+   */
+  public static String canonicalURL(String value) {
+    String maybeNewValue = value.trim().replace("\"", "");
+    if (!maybeNewValue.regionMatches(true, 0, "http", 0, 4)) {
+      maybeNewValue = "http://" + maybeNewValue;
+    }
+    return maybeNewValue;
+  }
+
+  /**
+   * @param value URL in canonical form
+   * @param sb accumulator for error messages
+   * @return true if the string is a good URL
+   */
+  public static boolean checkURL(String value, StringBuilder sb) {
     @SuppressWarnings("unused")
       URL oil;
     try {
-      oil = new URL(maybeNewValue);
+      oil = new URL(value);
     } catch (Exception e) {
-      whingeSB(sb, maybeNewValue + " is a malformed URL " + e.getMessage());
+      whingeSB(sb, value + " is a malformed URL " + e.getMessage());
       return false;
     }
     return true;
@@ -5,14 +5,28 @@ package asst.dim;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
+import org.json.simple.JSONObject;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import asst.dim.ValidateDIMs;
 
 /**
@@ -114,4 +128,316 @@ public class DIMjUnit {
     // System.out.println(result);
 
   }
+
+  @Test
+  public void testValidateBatch() throws Exception {
+    DBPojo[] rows = new DBPojo[3];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = new DBPojo();
+      rows[i].strang1 = "me@paymentech.com";
+      rows[i].strang = "google.com";
+    }
+    assertNull(ValidateColumns.validateBatch(rows));
+    /* Normalized cells are written back to the objects. */
+    assertEquals("http://google.com", rows[1].strang);
+    rows[2].strang1 = "user@.invalid.com";
+    String result = ValidateColumns.validateBatch(rows);
+    assertTrue(result.startsWith("Row 2: "));
+    /* A URL shorter than the scheme is normalized, not an exception. */
+    rows[0].strang = "a.b";
+    assertFalse(ValidateColumns.validateBatch(rows).contains("Row 0"));
+    assertEquals("http://a.b", rows[0].strang);
+
+    Field fld = DBPojo.class.getField("strang1");
+    BitSet failures =
+      ValidateColumns.validateEmailColumn(fld, rows, new StringBuilder());
+    assertEquals(1, failures.cardinality());
+    assertTrue(failures.get(2));
+  }
+
+  @Test
+  public void testValidateRangeColumns() throws Exception {
+    DBPojo[] rows = new DBPojo[70];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = new DBPojo();
+      rows[i].integer = i;
+      rows[i].doubleV = i / 2.0;
+    }
+    StringBuilder sb = new StringBuilder();
+    BitSet failures = ValidateColumns.validateIntColumn
+      (DBPojo.class.getField("integer"), rows, sb, "count", 1, 65);
+    assertEquals(5, failures.cardinality());
+    assertTrue(failures.get(0));
+    assertFalse(failures.get(65));
+    assertTrue(failures.get(69));
+    failures = ValidateColumns.validateDoubleColumn
+      (DBPojo.class.getField("doubleV"), rows, sb, "ratio", 0.0, 34.0);
+    assertEquals(1, failures.cardinality());
+    assertTrue(failures.get(69));
+    long[] bits = ValidateColumns.checkLongRange(new long[] {5, -1, 7}, 0, 6);
+    assertEquals(6L, bits[0]);
+  }
+
+  /** Object with a wrapper type field. */
+  public static class Counted {
+    public Integer count;
+  }
+
+  @Test
+  public void testValidateWrapperColumn() throws Exception {
+    Counted[] rows = new Counted[3];
+    for (int i = 0; i < rows.length; i++) { rows[i] = new Counted(); }
+    rows[0].count = 5;
+    rows[2].count = 50;
+    StringBuilder sb = new StringBuilder();
+    BitSet failures = ValidateColumns.validateIntColumn
+      (Counted.class.getField("count"), rows, sb, "count", 0, 10);
+    /* The null cell is a failure, not a zero. */
+    assertEquals(2, failures.cardinality());
+    assertTrue(failures.get(1));
+    assertTrue(failures.get(2));
+    assertTrue(sb.toString().contains("Row 1: Field count has no value."));
+  }
+
+  /** Object with fields that are formatted on output. */
+  public static class Contact {
+    @DIM("phone")
+    @JsonProperty("tel")
+    public String phone;
+    @DIM("postalCode")
+    @JsonProperty
+    public String zip;
+    @DIM("currency")
+    @JsonProperty
+    public double balance;
+  }
+
+  /** Object whose formatted field has no JsonProperty. */
+  public static class Plain {
+    @DIM("phone")
+    public String phone;
+  }
+
+  @Test
+  public void testFormatDIMs() throws Exception {
+    assertEquals("(617) 555-1234",
+		 FormatDIMs.formatPhone("6175551234", Locale.US, "US"));
+    assertEquals("+1 (617) 555-1234",
+		 FormatDIMs.formatPhone("16175551234", Locale.FRANCE, "us"));
+    assertEquals("12345", FormatDIMs.formatPhone("12345", Locale.US, "US"));
+    /* Without a jurisdiction the numbering plan is unknown. */
+    assertEquals("4930123456",
+		 FormatDIMs.formatPhone("4930123456", Locale.US, null));
+    assertEquals("02139-4307",
+		 FormatDIMs.formatPostalCode("021394307", Locale.US, "US"));
+    assertEquals("021394307",
+		 FormatDIMs.formatPostalCode("021394307", Locale.US, null));
+    assertEquals("K1A 0B1",
+		 FormatDIMs.formatPostalCode("K1A0B1", Locale.US, "CA"));
+    assertEquals("SW1A 1AA",
+		 FormatDIMs.formatPostalCode("SW1A1AA", Locale.UK, "GB"));
+    assertEquals("$1,234.50",
+		 FormatDIMs.formatCurrency("1234.5", Locale.US, "US"));
+    /* The currency belongs to the data, so without a jurisdiction the
+     * amount is only a number. */
+    assertEquals("1,234.5",
+		 FormatDIMs.formatCurrency("1234.5", Locale.US, null));
+    assertEquals("1.234,5",
+		 FormatDIMs.formatCurrency("1234.5", Locale.GERMANY, null));
+    /* Amounts without a known currency are left alone. */
+    assertEquals("1234.5",
+		 FormatDIMs.formatCurrency("1234.5", Locale.US, "AQ"));
+    /* The same thread gets the same pooled format back. */
+    assertSame(FormatDIMs.currencyFormat(Locale.US, "US"),
+	       FormatDIMs.currencyFormat(Locale.US, "US"));
+
+    Contact c = new Contact();
+    c.phone = "6175551234";
+    c.zip = "021394307";
+    c.balance = 1234.5;
+    IRoleInfo user = new IRoleInfo() {
+	@Override
+	public Set<String> getUserRoles() { return Collections.emptySet(); }
+	@Override
+	public Locale getLocale() { return Locale.US; }
+	@Override
+	public String getJurisdiction() { return "US"; }
+      };
+    JSONObject jobj = MaskDIMs.maskObject(c, user);
+    assertEquals("(617) 555-1234", jobj.get("tel"));
+    assertEquals("02139-4307", jobj.get("zip"));
+    assertEquals("$1,234.50", jobj.get("balance"));
+
+    /* A field without JsonProperty is formatted under its Java name. */
+    Plain p = new Plain();
+    p.phone = "6175551234";
+    jobj = MaskDIMs.maskObject(p, user);
+    assertEquals("(617) 555-1234", jobj.get("phone"));
+
+    /* Role information which supplies neither a locale nor a
+     * jurisdiction leaves the output as it was before formatting. */
+    IRoleInfo rolesOnly = () -> Collections.emptySet();
+    assertEquals(MaskDIMs.pojoToJson(c), MaskDIMs.maskObject(c, rolesOnly));
+    assertEquals("6175551234",
+		 MaskDIMs.maskObject(c, rolesOnly).get("tel"));
+
+    /* A masked value is not formatted. */
+    RoleToMask[] rRay = {new RoleToMask("admin", RoleToMask.maskPermit)};
+    RoleToMask.ROLE_MASKS.put("phone", rRay);
+    try {
+      jobj = MaskDIMs.maskObject(c, user);
+      assertNull(jobj.get("tel"));
+    } finally {
+      RoleToMask.ROLE_MASKS.remove("phone");
+    }
+  }
+
+  @Test
+  public void testMaskObjectBytes() throws Exception {
+    Contact c = new Contact();
+    c.phone = "6175551234";
+    c.zip = "021394307";
+    c.balance = 1234.5;
+    IRoleInfo user = new IRoleInfo() {
+	@Override
+	public Set<String> getUserRoles() { return Collections.emptySet(); }
+	@Override
+	public Locale getLocale() { return Locale.US; }
+	@Override
+	public String getJurisdiction() { return "US"; }
+      };
+    RoleToMask[] rRay = {new RoleToMask("admin", RoleToMask.maskPermit)};
+    RoleToMask.ROLE_MASKS.put("postalCode", rRay);
+    try {
+      JSONObject jobj = MaskDIMs.maskObject(c, user);
+      for (ObjectMapper mapper : new ObjectMapper[] {
+	  MaskDIMs.SMILE_MAPPER, MaskDIMs.CBOR_MAPPER}) {
+	byte[] bytes = MaskDIMs.maskObjectBytes(c, user, mapper);
+	Map<String, Object> attrs = MaskDIMs.readMaskedBytes(bytes, mapper);
+	/* Binary output omits the same fields as JSON, but values stay in
+	 * normalized form with their own types. */
+	assertEquals(jobj.keySet(), attrs.keySet());
+	assertNull(jobj.get("zip"));
+	assertNull(attrs.get("zip"));
+	assertEquals("(617) 555-1234", jobj.get("tel"));
+	assertEquals("6175551234", attrs.get("tel"));
+	assertEquals("$1,234.50", jobj.get("balance"));
+	assertEquals(Double.valueOf(1234.5), attrs.get("balance"));
+
+	/* A result set goes out as one array, masked the same way. */
+	List<Contact> rows = Arrays.asList(c, c, c);
+	bytes = MaskDIMs.maskRowsBytes(rows, user, mapper);
+	List<Map<String, Object>> read = MaskDIMs.readMaskedRows(bytes, mapper);
+	assertEquals(3, read.size());
+	for (Map<String, Object> row : read) { assertEquals(attrs, row); }
+      }
+    } finally {
+      RoleToMask.ROLE_MASKS.remove("postalCode");
+    }
+  }
+
+  @Test
+  public void testTokenize() throws Exception {
+    File file = File.createTempFile("dimtokens", ".tbl");
+    file.delete();
+    try {
+      TokenTable table = TokenTable.open(file, 1000, 1 << 16);
+      String t1 = table.tokenize("me@paymentech.com");
+      String t2 = table.tokenize("user@invalid.com");
+      assertTrue(t1.startsWith(TokenTable.TOKEN_PREFIX));
+      assertFalse(t1.equals(t2));
+      /* The same value always gets the same token. */
+      assertEquals(t1, table.tokenize("me@paymentech.com"));
+      assertEquals(2, table.size());
+      assertEquals("user@invalid.com", table.detokenize(t2));
+      assertNull(table.detokenize("me@paymentech.com"));
+      /* A second open of the same file must fail while it is locked. */
+      try {
+	TokenTable.open(file, 1000, 1 << 16);
+	fail("Opened a locked token table");
+      } catch (IOException e) {
+	// expected
+      }
+      table.close();
+      try {
+	table.tokenize("me@paymentech.com");
+	fail("Tokenized with a closed token table");
+      } catch (IllegalStateException e) {
+	// expected
+      }
+
+      /* The mapping survives reopening the file. */
+      table = TokenTable.open(file, 1, 1);
+      assertEquals(t1, table.tokenize("me@paymentech.com"));
+      assertEquals("me@paymentech.com", table.detokenize(t1));
+
+      /* Only roles which may see the whole value can get it back. */
+      MaskDIMs.tokenTable = table;
+      RoleToMask[] rRay = {
+	new RoleToMask("admin", RoleToMask.maskPermit),
+	new RoleToMask("analyst", RoleToMask.maskTokenize)};
+      RoleToMask.ROLE_MASKS.put("email", rRay);
+      IRoleInfo admin   = () -> Collections.singleton("admin");
+      IRoleInfo analyst = () -> Collections.singleton("analyst");
+      assertEquals(t1, RoleToMask.findMaskerForDimAndRoles("email", analyst)
+		   .invoke(null, "me@paymentech.com"));
+      assertEquals("me@paymentech.com", MaskDIMs.detokenize(t1, "email", admin));
+      assertEquals(t1, MaskDIMs.detokenize(t1, "email", analyst));
+      table.close();
+    } finally {
+      RoleToMask.ROLE_MASKS.remove("email");
+      MaskDIMs.tokenTable = null;
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testDamagedTokenTable() throws Exception {
+    File file = File.createTempFile("dimtokens", ".tbl");
+    file.delete();
+    try {
+      TokenTable.open(file, 16, 1024).close();
+      /* Slot counts which are not powers of two, or which run past the
+       * end of the file, and data ends outside the data region are all
+       * rejected. */
+      long[][] damage = {{8, 12}, {8, 1L << 20}, {24, 8}, {24, 1L << 20}};
+      for (long[] d : damage) {
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	raf.seek(d[0]);
+	long good = raf.readLong();
+	raf.seek(d[0]);
+	raf.writeLong(d[1]);
+	raf.close();
+	try {
+	  TokenTable.open(file, 16, 1024);
+	  fail("Opened a token table with a damaged header");
+	} catch (IOException e) {
+	  // expected
+	}
+	raf = new RandomAccessFile(file, "rw");
+	raf.seek(d[0]);
+	raf.writeLong(good);
+	raf.close();
+      }
+      /* The failed opens released the file lock. */
+      try (TokenTable table = TokenTable.open(file, 16, 1024)) {
+	assertEquals(0, table.size());
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testTinyTokenTable() throws Exception {
+    File file = File.createTempFile("dimtokens", ".tbl");
+    file.delete();
+    try (TokenTable table = TokenTable.open(file, 2, 1024)) {
+      /* Small tables are rounded up so that they can hold a value. */
+      String t = table.tokenize("x");
+      assertEquals("x", table.detokenize(t));
+    } finally {
+      file.delete();
+    }
+  }
 }
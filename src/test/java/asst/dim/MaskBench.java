@@ -0,0 +1,218 @@
+package asst.dim;
+
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compare the size and the encode and decode speed of masked output.
+ * Four outputs are measured: JSON text from maskObject and json-simple,
+ * which is the original path; JSON text from the Jackson path used for
+ * the binary formats, as a control; Smile; and CBOR.  The control
+ * separates the cost of the format from the cost of the pojoToJson text
+ * round trip.
+ * <p>
+ * Each variant runs in every round, in an order which rotates from
+ * round to round, and the first rounds are discarded as JIT warm-up.
+ * Medians over the remaining rounds are reported, with the slowest and
+ * fastest round.  This is not a unit test; run its main method.
+ * @author Material Gain
+ * @since 2014 04
+ */
+public class MaskBench {
+
+  static final int ROUNDS = 15;
+  static final int WARMUP_ROUNDS = 5;
+  static final int RESULT_SET_ROWS = 2000;
+
+  static final ObjectMapper TEXT_MAPPER = new ObjectMapper();
+
+  /** A user without a locale or jurisdiction, so that maskObject does
+   * no display formatting and every variant does the same masking. */
+  static final IRoleInfo USER = new IRoleInfo() {
+      @Override
+      public Set<String> getUserRoles() {
+	return Collections.singleton("clerk");
+      }
+    };
+
+  /** Keeps the JIT from discarding results. */
+  static long sink;
+
+  /** A row of a typical customer result set. */
+  public static class Customer {
+    @JsonProperty public long id;
+    @JsonProperty public String name;
+    @DIM("email")
+    @JsonProperty public String email;
+    @DIM("phone")
+    @JsonProperty public String phone;
+    @DIM("postalCode")
+    @JsonProperty public String zip;
+    @DIM("currency")
+    @JsonProperty public double balance;
+    @DIM("URL")
+    @JsonProperty public String website;
+    @JsonProperty public String city;
+    @JsonProperty public String state;
+    @JsonProperty public String status;
+    @JsonProperty public long created;
+    @JsonProperty public int visits;
+  }
+
+  /** One way of encoding and decoding masked output. */
+  abstract static class Variant {
+    final String name;
+    byte[] bytes;
+    final double[] encode = new double[ROUNDS];
+    final double[] decode = new double[ROUNDS];
+    Variant(String name) { this.name = name; }
+    abstract byte[] encode() throws Exception;
+    abstract Object decode(byte[] b) throws Exception;
+  }
+
+  /**
+   * @param args ignored
+   * @throws Exception when things go wrong
+   */
+  public static void main(String[] args) throws Exception {
+    /* Clerks may see phone numbers but not email addresses. */
+    Class<?>[] params = {String.class};
+    Method seeAll = MaskDIMs.class.getMethod("maskSeeAll", params);
+    RoleToMask.ROLE_MASKS.put("email", new RoleToMask[] {
+	new RoleToMask("admin", seeAll)});
+    RoleToMask.ROLE_MASKS.put("phone", new RoleToMask[] {
+	new RoleToMask("clerk", seeAll)});
+
+    final Customer one = customer(1);
+    run("Single object", 1, 5000,
+	new Variant("json-simple") {
+	  byte[] encode() throws Exception {
+	    return MaskDIMs.maskObject(one, USER).toJSONString()
+	      .getBytes(StandardCharsets.UTF_8);
+	  }
+	  Object decode(byte[] b) throws Exception {
+	    return new JSONParser().parse(new String(b, StandardCharsets.UTF_8));
+	  }
+	},
+	objectVariant("JSON", one, TEXT_MAPPER),
+	objectVariant("Smile", one, MaskDIMs.SMILE_MAPPER),
+	objectVariant("CBOR", one, MaskDIMs.CBOR_MAPPER));
+
+    final List<Customer> rows = new ArrayList<Customer>();
+    for (int i = 0; i < RESULT_SET_ROWS; i++) { rows.add(customer(i)); }
+    run("Result set of " + RESULT_SET_ROWS + " rows", RESULT_SET_ROWS, 5,
+	new Variant("json-simple") {
+	  @SuppressWarnings("unchecked")
+	  byte[] encode() throws Exception {
+	    JSONArray array = new JSONArray();
+	    for (Customer c : rows) { array.add(MaskDIMs.maskObject(c, USER)); }
+	    return array.toJSONString().getBytes(StandardCharsets.UTF_8);
+	  }
+	  Object decode(byte[] b) throws Exception {
+	    return new JSONParser().parse(new String(b, StandardCharsets.UTF_8));
+	  }
+	},
+	rowsVariant("JSON", rows, TEXT_MAPPER),
+	rowsVariant("Smile", rows, MaskDIMs.SMILE_MAPPER),
+	rowsVariant("CBOR", rows, MaskDIMs.CBOR_MAPPER));
+    System.out.println(sink == 42 ? "" : "done");
+  }
+
+  static Customer customer(int i) {
+    Customer c = new Customer();
+    c.id = 100000 + i;
+    c.name = "Customer " + i;
+    c.email = "customer" + i + "@example.com";
+    c.phone = String.valueOf(6175550000L + i);
+    c.zip = String.valueOf(21390000 + i);
+    c.balance = 1000 + (i * 1.25);
+    c.website = "http://www.example.com/c/" + i;
+    c.city = "Cambridge";
+    c.state = "MA";
+    c.status = (i % 3 == 0) ? "active" : "dormant";
+    c.created = 1396000000000L + (i * 60000L);
+    c.visits = i % 97;
+    return c;
+  }
+
+  static Variant objectVariant(String name, final Object o,
+			       final ObjectMapper mapper) {
+    return new Variant(name) {
+      byte[] encode() throws Exception {
+	return MaskDIMs.maskObjectBytes(o, USER, mapper);
+      }
+      Object decode(byte[] b) throws Exception {
+	return MaskDIMs.readMaskedBytes(b, mapper);
+      }
+    };
+  }
+
+  static Variant rowsVariant(String name, final List<?> rows,
+			     final ObjectMapper mapper) {
+    return new Variant(name) {
+      byte[] encode() throws Exception {
+	return MaskDIMs.maskRowsBytes(rows, USER, mapper);
+      }
+      Object decode(byte[] b) throws Exception {
+	return MaskDIMs.readMaskedRows(b, mapper);
+      }
+    };
+  }
+
+  /**
+   * Run every variant once per round in rotating order and report rows
+   * per second.
+   * @param title name of the scenario
+   * @param rowsPerOp rows encoded or decoded by one call
+   * @param iters calls per measurement
+   * @param variants ways of producing the output
+   * @throws Exception when things go wrong
+   */
+  static void run(String title, int rowsPerOp, int iters,
+		  Variant... variants) throws Exception {
+    int n = variants.length;
+    for (int r = 0; r < ROUNDS; r++) {
+      for (int k = 0; k < n; k++) {
+	Variant v = variants[(r + k) % n];
+	long start = System.nanoTime();
+	for (int i = 0; i < iters; i++) {
+	  v.bytes = v.encode();
+	  sink += v.bytes.length;
+	}
+	v.encode[r] = (double)iters * rowsPerOp * 1e9 /
+	  (System.nanoTime() - start);
+	start = System.nanoTime();
+	for (int i = 0; i < iters; i++) {
+	  sink += v.decode(v.bytes).hashCode();
+	}
+	v.decode[r] = (double)iters * rowsPerOp * 1e9 /
+	  (System.nanoTime() - start);
+      }
+    }
+    System.out.println(title + " (rows/s, median [min..max] of " +
+		       (ROUNDS - WARMUP_ROUNDS) + " rounds)");
+    for (Variant v : variants) {
+      System.out.printf("  %-11s %8d bytes  encode %s  decode %s%n",
+			v.name, v.bytes.length, stats(v.encode),
+			stats(v.decode));
+    }
+  }
+
+  static String stats(double[] perRound) {
+    double[] d = Arrays.copyOfRange(perRound, WARMUP_ROUNDS, ROUNDS);
+    Arrays.sort(d);
+    return String.format("%9.0f [%9.0f..%9.0f]", d[d.length / 2], d[0],
+			 d[d.length - 1]);
+  }
+}